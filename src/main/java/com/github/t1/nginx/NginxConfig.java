@@ -13,13 +13,21 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.stream.Stream;
 
 import static com.github.t1.nginx.HostPort.DEFAULT_HTTP_PORT;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.stream.Collectors.joining;
 
 @Data
@@ -37,6 +45,54 @@ public class NginxConfig {
         }
     }
 
+    /**
+     * Write to a temp file next to the target, then atomically replace the target,
+     * so a failure never leaves a truncated config behind.
+     * A symlink is resolved, so the file it points to gets replaced, not the link itself.
+     * On POSIX file systems, an existing target keeps its permissions, and also its owner and group,
+     * as far as we are allowed to set them; a new file gets the default permissions.
+     */
+    public void writeTo(Path path) {
+        Path temp = null;
+        try {
+            Path target = path.toAbsolutePath();
+            if (Files.exists(target))
+                target = target.toRealPath();
+            temp = Files.createFile(target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp"));
+            Files.write(temp, toString().getBytes(UTF_8));
+            if (Files.exists(target))
+                copyPosixAttributes(target, temp);
+            Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(temp, e);
+            throw new RuntimeException("can't write config to '" + path + "'", e);
+        }
+    }
+
+    private static void copyPosixAttributes(Path from, Path to) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (view == null)
+            return;
+        PosixFileAttributes attributes = Files.readAttributes(from, PosixFileAttributes.class);
+        try {
+            view.setGroup(attributes.group());
+            view.setOwner(attributes.owner());
+        } catch (FileSystemException e) {
+            // not allowed to: the file is owned by whoever wrote it
+        }
+        view.setPermissions(attributes.permissions());
+    }
+
+    private static void deleteQuietly(Path temp, IOException cause) {
+        if (temp == null)
+            return;
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
     @NonNull private String before, after;
     @NonNull private List<NginxServer> servers;
     @NonNull private List<NginxUpstream> upstreams;
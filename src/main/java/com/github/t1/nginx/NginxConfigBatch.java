@@ -0,0 +1,235 @@
+package com.github.t1.nginx;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+/**
+ * Read-Modify-Write many config files concurrently, e.g. one for every nginx instance in a fleet.
+ * At most <code>maxInFlight</code> files are being processed at any time; submitting more blocks the caller.
+ * <p>
+ * A failure of one file doesn't affect the others: it's reported in the {@link Result} for that file,
+ * and that includes uris that can't be processed at all.
+ * Only errors that indicate a broken JVM, e.g. an {@link OutOfMemoryError}, are not caught:
+ * they cancel the files not started yet and are rethrown to the caller.
+ * <p>
+ * If the caller is interrupted, the files not started yet are not touched and get a failed {@link Result}
+ * with a {@link CancellationException}; the files already being processed are completed,
+ * so every {@link Result} tells what happened to its file. The interrupt flag stays set.
+ */
+public class NginxConfigBatch implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final boolean ownsExecutor;
+
+    /** Virtual threads when the JVM supports them, else one platform thread per core */
+    public static NginxConfigBatch create() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new NginxConfigBatch(defaultExecutor(cores), 2 * cores, true);
+    }
+
+    public static NginxConfigBatch on(@NonNull ExecutorService executor, int maxInFlight) {
+        return new NginxConfigBatch(executor, maxInFlight, false);
+    }
+
+    private static ExecutorService defaultExecutor(int cores) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(cores);
+        }
+    }
+
+    private NginxConfigBatch(ExecutorService executor, int maxInFlight, boolean ownsExecutor) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive but is " + maxInFlight);
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Read, transform, and write back every file; the results are in the order of the uris.
+     * Only <code>file</code> uris can be written, and every file can be updated only once per batch:
+     * other uris and uris denoting a file that comes earlier in the list get a failed {@link Result}.
+     */
+    public List<Result> update(Collection<URI> uris, Consumer<NginxConfig> transform) {
+        Map<Path, URI> seen = new HashMap<>();
+        List<Job> jobs = new ArrayList<>(uris.size());
+        for (URI uri : uris) {
+            Path path;
+            try {
+                path = realPath(uri);
+            } catch (IOException | RuntimeException e) {
+                jobs.add(Job.failing(uri, e));
+                continue;
+            }
+            URI first = seen.putIfAbsent(path, uri);
+            if (first != null) {
+                jobs.add(Job.failing(uri, new IllegalArgumentException("'" + uri + "' is the same file as '" + first + "'")));
+                continue;
+            }
+            jobs.add(new Job(uri, () -> {
+                NginxConfig config = NginxConfig.readFrom(uri);
+                transform.accept(config);
+                config.writeTo(path);
+                return config;
+            }));
+        }
+        return apply(jobs);
+    }
+
+    private static Path realPath(URI uri) throws IOException {
+        if (!"file".equals(uri.getScheme()))
+            throw new IllegalArgumentException("can only update file uris but got '" + uri + "'");
+        Path path = Paths.get(uri);
+        return Files.exists(path) ? path.toRealPath() : path.normalize();
+    }
+
+    /** Only read and transform every file; the results are in the order of the uris */
+    public List<Result> read(Collection<URI> uris, Consumer<NginxConfig> transform) {
+        List<Job> jobs = new ArrayList<>(uris.size());
+        for (URI uri : uris)
+            jobs.add(new Job(uri, () -> {
+                NginxConfig config = NginxConfig.readFrom(uri);
+                transform.accept(config);
+                return config;
+            }));
+        return apply(jobs);
+    }
+
+    private List<Result> apply(List<Job> jobs) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        boolean interrupted = false;
+        List<CompletableFuture<Result>> futures = new ArrayList<>(jobs.size());
+        try {
+            for (Job job : jobs) {
+                if (!cancelled.get()) {
+                    try {
+                        futures.add(submit(job, cancelled));
+                        continue;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        cancelled.set(true);
+                    }
+                }
+                futures.add(completedFuture(job.cancelled()));
+            }
+            List<Result> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<Result> future : futures) {
+                if (!interrupted) {
+                    try {
+                        results.add(future.get());
+                        continue;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        cancelled.set(true);
+                    } catch (ExecutionException e) {
+                        throw rethrow(e.getCause());
+                    }
+                }
+                try {
+                    results.add(future.join());
+                } catch (CompletionException e) {
+                    throw rethrow(e.getCause());
+                }
+            }
+            return results;
+        } catch (RuntimeException | Error e) {
+            cancelled.set(true);
+            throw e;
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Result> submit(Job job, AtomicBoolean cancelled) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return cancelled.get() ? job.cancelled() : job.run(cancelled);
+                } finally {
+                    inFlight.release();
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    @SneakyThrows
+    private static RuntimeException rethrow(Throwable throwable) { throw throwable; }
+
+    /** The number of files that can still be started without blocking */
+    int availableSlots() { return inFlight.availablePermits(); }
+
+    /** Is a caller waiting for a free slot */
+    boolean isBlocked() { return inFlight.hasQueuedThreads(); }
+
+    @Override public void close() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+
+    @Value
+    private static class Job {
+        URI uri;
+        Callable<NginxConfig> task;
+
+        static Job failing(URI uri, Exception error) { return new Job(uri, () -> { throw error; }); }
+
+        Result run(AtomicBoolean cancelled) {
+            try {
+                return Result.success(uri, task.call());
+            } catch (Exception | AssertionError | LinkageError e) {
+                return Result.failure(uri, e);
+            } catch (Error e) {
+                cancelled.set(true);
+                throw e;
+            }
+        }
+
+        Result cancelled() {
+            return Result.failure(uri, new CancellationException("cancelled before '" + uri + "' was processed"));
+        }
+    }
+
+    @Value
+    public static class Result {
+        @NonNull URI uri;
+        NginxConfig config;
+        Throwable error;
+
+        static Result success(URI uri, NginxConfig config) { return new Result(uri, config, null); }
+
+        static Result failure(URI uri, Throwable error) { return new Result(uri, null, error); }
+
+        public boolean isFailed() { return error != null; }
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.t1.nginx;
+
+import com.github.t1.nginx.NginxConfig.NginxUpstream;
+import com.github.t1.nginx.NginxConfigBatch.Result;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.api.Assertions.contentOf;
+
+class NginxConfigBatchTest {
+    private static final URL RESOURCE = NginxConfigBatchTest.class.getResource("nginx.conf");
+
+    @TempDir Path dir;
+
+    private List<URI> copies(int count) throws IOException {
+        List<URI> uris = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path path = dir.resolve("nginx-" + i + ".conf");
+            try (InputStream in = RESOURCE.openStream()) {
+                Files.copy(in, path);
+            }
+            uris.add(path.toUri());
+        }
+        return uris;
+    }
+
+    @Test void shouldReadAllInOrder() throws IOException {
+        List<URI> uris = copies(20);
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.read(uris, config -> {});
+        }
+
+        assertThat(results).extracting(Result::getUri).containsExactlyElementsOf(uris);
+        assertThat(results).allSatisfy(result -> {
+            assertThat(result.isFailed()).isFalse();
+            assertThat(result.getConfig().toString()).isEqualTo(contentOf(RESOURCE));
+        });
+    }
+
+    @Test void shouldUpdateAllFiles() throws IOException {
+        List<URI> uris = copies(20);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try (NginxConfigBatch batch = NginxConfigBatch.on(executor, 2)) {
+            batch.update(uris, config -> config.addUpstream(NginxUpstream.named("added")
+                .addHostPort(HostPort.valueOf("localhost:8380"))));
+        } finally {
+            executor.shutdown();
+        }
+
+        for (URI uri : uris)
+            assertThat(NginxConfig.readFrom(uri).upstream("added")).isPresent();
+    }
+
+    @Test void shouldIsolateFailures() throws IOException {
+        List<URI> uris = copies(3);
+        URI missing = dir.resolve("missing.conf").toUri();
+        uris.add(1, missing);
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.read(uris, config -> {});
+        }
+
+        assertThat(results).extracting(Result::isFailed).containsExactly(false, true, false, false);
+        assertThat(results.get(1).getError()).hasMessage("can't load config stream from '" + missing.toURL() + "'");
+        assertThat(results.get(1).getConfig()).isNull();
+    }
+
+    @Test void shouldIsolateUnknownScheme() throws IOException {
+        List<URI> uris = copies(3);
+        URI s3 = URI.create("s3://bucket/nginx.conf");
+        uris.add(1, s3);
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.read(uris, config -> {});
+        }
+
+        assertThat(results).extracting(Result::isFailed).containsExactly(false, true, false, false);
+        assertThat(results.get(1).getError()).isInstanceOf(MalformedURLException.class);
+    }
+
+    @Test void shouldIsolateFailingTransform() throws IOException {
+        List<URI> uris = copies(4);
+        NginxConfig.readFrom(uris.get(2))
+            .addUpstream(NginxUpstream.named("poison").addHostPort(HostPort.valueOf("localhost:8380")))
+            .writeTo(Paths.get(uris.get(2)));
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.update(uris, config -> {
+                if (config.upstream("poison").isPresent())
+                    throw new AssertionError("poisoned");
+                config.addUpstream(NginxUpstream.named("added").addHostPort(HostPort.valueOf("localhost:8480")));
+            });
+        }
+
+        assertThat(results).extracting(Result::isFailed).containsExactly(false, false, true, false);
+        assertThat(results.get(2).getError()).isInstanceOf(AssertionError.class).hasMessage("poisoned");
+        assertThat(NginxConfig.readFrom(uris.get(2)).upstream("added")).isNotPresent();
+        assertThat(NginxConfig.readFrom(uris.get(3)).upstream("added")).isPresent();
+    }
+
+    @Test void shouldFailUpdateOfNonFileUri() throws IOException {
+        List<URI> uris = copies(2);
+        uris.add(1, URI.create("http://example.org/nginx.conf"));
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.update(uris, config -> config.removeUpstream("backend"));
+        }
+
+        assertThat(results).extracting(Result::isFailed).containsExactly(false, true, false);
+        assertThat(results.get(1).getError()).isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("can only update file uris but got 'http://example.org/nginx.conf'");
+        assertThat(NginxConfig.readFrom(uris.get(0)).upstream("backend")).isNotPresent();
+        assertThat(NginxConfig.readFrom(uris.get(2)).upstream("backend")).isNotPresent();
+    }
+
+    @Test void shouldFailUpdateOfSameFileTwice() throws IOException {
+        List<URI> uris = copies(2);
+        Files.createDirectory(dir.resolve("sub"));
+        Path link = Files.createSymbolicLink(dir.resolve("link.conf"), dir.resolve("nginx-0.conf"));
+        uris.add(uris.get(0));
+        uris.add(dir.resolve("sub/../nginx-1.conf").toUri());
+        uris.add(link.toUri());
+
+        List<Result> results;
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            results = batch.update(uris, config -> config.addUpstream(NginxUpstream.named("added")
+                .addHostPort(HostPort.valueOf("localhost:8380"))));
+        }
+
+        assertThat(results).extracting(Result::isFailed).containsExactly(false, false, true, true, true);
+        assertThat(results.get(3).getError()).isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("'" + uris.get(3) + "' is the same file as '" + uris.get(1) + "'");
+        assertThat(NginxConfig.readFrom(uris.get(0)).upstreams().filter(upstream -> upstream.getName().equals("added")))
+            .hasSize(1);
+    }
+
+    @Test void shouldRethrowVirtualMachineError() throws IOException {
+        List<URI> uris = copies(3);
+
+        try (NginxConfigBatch batch = NginxConfigBatch.create()) {
+            Throwable thrown = catchThrowable(() -> batch.read(uris, config -> {
+                throw new OutOfMemoryError("simulated");
+            }));
+
+            assertThat(thrown).isInstanceOf(OutOfMemoryError.class).hasMessage("simulated");
+        }
+    }
+
+    @Test void shouldLimitConfigsInFlight() throws Exception {
+        List<URI> uris = copies(6);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        BlockingTransform transform = new BlockingTransform();
+
+        try (NginxConfigBatch batch = NginxConfigBatch.on(executor, 2)) {
+            Future<List<Result>> future = caller.submit(() -> batch.read(uris, transform));
+
+            assertThat(transform.started.tryAcquire(2, 10, SECONDS)).isTrue();
+            await(batch::isBlocked);
+            assertThat(batch.availableSlots()).isZero();
+            assertThat(transform.running).hasValue(2);
+            assertThat(future).isNotDone();
+
+            transform.proceed.countDown();
+            List<Result> results = future.get(10, SECONDS);
+
+            assertThat(results).extracting(Result::isFailed).containsOnly(false).hasSize(6);
+            assertThat(transform.maxRunning).hasValue(2);
+        } finally {
+            caller.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test void shouldCancelUnstartedConfigsWhenInterrupted() throws Exception {
+        List<URI> uris = copies(6);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        BlockingTransform transform = new BlockingTransform();
+        AtomicReference<List<Result>> results = new AtomicReference<>();
+        AtomicBoolean interruptedAfter = new AtomicBoolean();
+
+        try (NginxConfigBatch batch = NginxConfigBatch.on(executor, 2)) {
+            Thread caller = new Thread(() -> {
+                results.set(batch.update(uris, transform));
+                interruptedAfter.set(Thread.currentThread().isInterrupted());
+            });
+            caller.start();
+            assertThat(transform.started.tryAcquire(2, 10, SECONDS)).isTrue();
+            await(batch::isBlocked);
+
+            caller.interrupt();
+            await(() -> !batch.isBlocked());
+            transform.proceed.countDown();
+            caller.join(SECONDS.toMillis(10));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(results.get()).extracting(Result::isFailed).containsExactly(false, false, true, true, true, true);
+        assertThat(results.get().get(2).getError()).isInstanceOf(CancellationException.class);
+        assertThat(interruptedAfter).isTrue();
+        assertThat(NginxConfig.readFrom(uris.get(1)).upstream("added")).isPresent();
+        assertThat(NginxConfig.readFrom(uris.get(2)).upstream("added")).isNotPresent();
+    }
+
+    private static class BlockingTransform implements Consumer<NginxConfig> {
+        private final Semaphore started = new Semaphore(0);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override public void accept(NginxConfig config) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.release();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            config.addUpstream(NginxUpstream.named("added").addHostPort(HostPort.valueOf("localhost:8380")));
+            running.decrementAndGet();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("timed out").isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+}
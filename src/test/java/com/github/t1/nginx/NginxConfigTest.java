@@ -4,11 +4,20 @@ import com.github.t1.nginx.NginxConfig.NginxServer;
 import com.github.t1.nginx.NginxConfig.NginxServerLocation;
 import com.github.t1.nginx.NginxConfig.NginxUpstream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.util.List;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.contentOf;
 
@@ -50,4 +59,43 @@ class NginxConfigTest {
 
         assertThat(upstreams).containsExactly(UPSTREAM);
     }
+
+    @Test void shouldWriteThroughSymlink(@TempDir Path dir) throws IOException {
+        Path available = Files.createDirectory(dir.resolve("sites-available")).resolve("nginx.conf");
+        Path enabled = Files.createDirectory(dir.resolve("sites-enabled")).resolve("nginx.conf");
+        Files.write(available, contentOf(RESOURCE).getBytes(UTF_8));
+        Files.createSymbolicLink(enabled, Paths.get("../sites-available/nginx.conf"));
+
+        NginxConfig changed = NginxConfig.readFrom(enabled.toUri());
+        changed.removeUpstream("backend");
+        changed.writeTo(enabled);
+
+        assertThat(Files.isSymbolicLink(enabled)).isTrue();
+        assertThat(NginxConfig.readFrom(available.toUri()).upstream("backend")).isNotPresent();
+    }
+
+    @Test void shouldKeepPermissionsOfExistingFile(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("nginx.conf");
+        Files.write(path, contentOf(RESOURCE).getBytes(UTF_8));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r-----"));
+        UserPrincipal owner = Files.getOwner(path);
+
+        config.writeTo(path);
+
+        assertThat(Files.getPosixFilePermissions(path)).isEqualTo(PosixFilePermissions.fromString("rw-r-----"));
+        assertThat(Files.getOwner(path)).isEqualTo(owner);
+    }
+
+    @Test void shouldWriteNewFileWithDefaultPermissions(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("nginx.conf");
+        Path reference = Files.createFile(dir.resolve("reference.conf"));
+
+        config.writeTo(path);
+
+        assertThat(Files.getPosixFilePermissions(path)).isEqualTo(Files.getPosixFilePermissions(reference));
+        assertThat(contentOf(path.toFile())).isEqualTo(contentOf(RESOURCE));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files).containsExactlyInAnyOrder(path, reference);
+        }
+    }
 }